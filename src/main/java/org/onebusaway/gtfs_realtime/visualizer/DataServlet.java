@@ -17,8 +17,21 @@ package org.onebusaway.gtfs_realtime.visualizer;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -37,6 +50,24 @@ import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Broadcasts vehicle updates to connected WebSocket clients.
+ *
+ * Each broadcast frame holds only the vehicles that changed since the previous
+ * frame, and carries the server's epoch and an increasing version number. The
+ * most recent frames are kept in a log bounded by count and size. A client
+ * that reconnects with the epoch and version of the last frame it saw is sent
+ * only the frames it missed, or a shared keyframe of the full fleet if it is
+ * too far behind or the missed frames are larger than the keyframe. New
+ * connections are admitted at a fixed rate so that a reconnect storm after a
+ * restart is spread out over time.
+ *
+ * Each socket has its own small queue of frames waiting to be sent, drained in
+ * order by a shared pool of sender threads. A socket whose queue overflows has
+ * its queued frames replaced by the current keyframe, and a socket whose send
+ * has been blocked for too long is disconnected, so a stalled viewer never
+ * holds up other viewers for long or accumulates frames without bound.
+ */
 @Singleton
 public class DataServlet extends WebSocketServlet implements VehicleListener {
 
@@ -44,86 +75,411 @@ public class DataServlet extends WebSocketServlet implements VehicleListener {
 
   private static final Logger _log = LoggerFactory.getLogger(DataServlet.class);
 
-  private static final int WEB_SOCKET_IDLE_TIMEOUT_MS = 120 * 1000;
+  private static final int MAX_FRAME_LOG_SIZE = 64;
+
+  /**
+   * Upper bound on the total length of the frames in the log, in characters.
+   */
+  private static final long MAX_FRAME_LOG_LENGTH = 4 * 1024 * 1024;
+
+  private static final int MAX_JOINS_PER_INTERVAL = 25;
+
+  private static final long JOIN_INTERVAL_MS = 100;
+
+  private static final int MAX_PENDING_FRAMES = 8;
+
+  private static final long MAX_SEND_STALL_MS = 10 * 1000;
+
+  private static final long STALL_CHECK_INTERVAL_MS = 1000;
 
   private VisualizerService _visualierService;
 
   private Set<DataWebSocket> _sockets = new ConcurrentHashSet<DataWebSocket>();
 
-  private volatile String _vehicles;
+  private Queue<DataWebSocket> _pendingSockets = new ConcurrentLinkedQueue<DataWebSocket>();
+
+  private ScheduledExecutorService _joinExecutor;
+
+  private ScheduledExecutorService _stallCheckExecutor;
+
+  private ExecutorService _sendExecutor;
+
+  private int _sendThreads = Math.max(4,
+      2 * Runtime.getRuntime().availableProcessors());
+
+  private int _webSocketIdleTimeout = 120 * 1000;
+
+  /**
+   * Distinguishes this server instance, so that versions seen by a client
+   * before a restart are not mistaken for versions of the current instance.
+   */
+  private final long _epoch = System.currentTimeMillis();
+
+  /**
+   * Guards the version, frame log and keyframe, and is held while frames are
+   * queued for sending so that a joining client never misses or repeats a
+   * frame.
+   */
+  private final Object _frameLock = new Object();
+
+  private long _version = 0;
+
+  private final Deque<Frame> _frameLog = new ArrayDeque<Frame>();
+
+  private long _frameLogLength = 0;
+
+  /**
+   * The last update time of each vehicle as of the latest frame, used to
+   * leave unchanged vehicles out of frames.
+   */
+  private final Map<String, Long> _lastUpdatesById = new HashMap<String, Long>();
+
+  private String _keyframe;
+
+  private long _keyframeVersion = -1;
 
   @Inject
   public void setVisualizerService(VisualizerService visualizerService) {
     _visualierService = visualizerService;
   }
 
+  public void setSendThreads(int sendThreads) {
+    _sendThreads = sendThreads;
+  }
+
+  /**
+   * @param webSocketIdleTimeout time in ms before an idle WebSocket is closed
+   */
+  public void setWebSocketIdleTimeout(int webSocketIdleTimeout) {
+    _webSocketIdleTimeout = webSocketIdleTimeout;
+  }
+
   @PostConstruct
   public void start() {
+    _sendExecutor = Executors.newFixedThreadPool(Math.max(1, _sendThreads));
     _visualierService.addListener(this);
+    _joinExecutor = Executors.newSingleThreadScheduledExecutor();
+    _joinExecutor.scheduleWithFixedDelay(new JoinTask(), JOIN_INTERVAL_MS,
+        JOIN_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    // Stall checks run on their own thread, so that disconnecting a stalled
+    // client never holds up admission of new ones.
+    _stallCheckExecutor = Executors.newSingleThreadScheduledExecutor();
+    _stallCheckExecutor.scheduleWithFixedDelay(new StallCheckTask(),
+        STALL_CHECK_INTERVAL_MS, STALL_CHECK_INTERVAL_MS,
+        TimeUnit.MILLISECONDS);
   }
 
   @PreDestroy
   public void stop() {
     _visualierService.removeListener(this);
+    if (_joinExecutor != null) {
+      _joinExecutor.shutdownNow();
+    }
+    if (_stallCheckExecutor != null) {
+      _stallCheckExecutor.shutdownNow();
+    }
+    if (_sendExecutor != null) {
+      _sendExecutor.shutdownNow();
+    }
   }
 
   @Override
   public void handleVehicles(List<Vehicle> vehicles) {
-    String vehiclesAsJsonString = getVehiclesAsString(vehicles);
-    for (DataWebSocket socket : _sockets) {
-      socket.sendVehicles(vehiclesAsJsonString);
+    synchronized (_frameLock) {
+      List<Vehicle> changed = new ArrayList<Vehicle>();
+      for (Vehicle vehicle : vehicles) {
+        Long lastUpdate = _lastUpdatesById.put(vehicle.getId(),
+            vehicle.getLastUpdate());
+        if (lastUpdate == null || lastUpdate != vehicle.getLastUpdate()) {
+          changed.add(vehicle);
+        }
+      }
+      if (changed.isEmpty()) {
+        return;
+      }
+      _version++;
+      String frame = getFrameAsString(_version, false, changed);
+      _frameLog.addLast(new Frame(_version, frame));
+      _frameLogLength += frame.length();
+      while (!_frameLog.isEmpty()
+          && (_frameLog.size() > MAX_FRAME_LOG_SIZE
+              || _frameLogLength > MAX_FRAME_LOG_LENGTH)) {
+        _frameLogLength -= _frameLog.removeFirst().getJson().length();
+      }
+      for (DataWebSocket socket : _sockets) {
+        socket.sendVehicles(frame);
+      }
     }
   }
 
   @Override
   protected void doGet(HttpServletRequest req, HttpServletResponse resp)
       throws ServletException, IOException {
+    String keyframe;
+    synchronized (_frameLock) {
+      keyframe = getKeyframe();
+    }
     resp.setContentType("application/json");
     PrintWriter writer = resp.getWriter();
-    writer.write(_vehicles);
+    writer.write(keyframe);
   }
-  
+
   @Override
   public WebSocket doWebSocketConnect(HttpServletRequest request,
       String protocol) {
-    return new DataWebSocket();
+    return new DataWebSocket(getLastVersion(request.getParameter("epoch"),
+        request.getParameter("version")));
   }
 
   public void addSocket(DataWebSocket dataWebSocket) {
-    String vehiclesAsJsonString = getVehiclesAsString(_visualierService.getAllVehicles());
-    dataWebSocket.sendVehicles(vehiclesAsJsonString);
-    _sockets.add(dataWebSocket);
+    _pendingSockets.add(dataWebSocket);
   }
 
   public void removeSocket(DataWebSocket dataWebSocket) {
+    _pendingSockets.remove(dataWebSocket);
     _sockets.remove(dataWebSocket);
   }
 
-  private String getVehiclesAsString(List<Vehicle> vehicles) {
+  /**
+   * Catches up a pending socket with the frames it missed, or the current
+   * keyframe, and adds it to the set of sockets receiving broadcasts.
+   */
+  private void admitSocket(DataWebSocket dataWebSocket) {
+    synchronized (_frameLock) {
+      for (String frame : getCatchUpFrames(dataWebSocket.getLastVersion())) {
+        dataWebSocket.sendVehicles(frame);
+      }
+      _sockets.add(dataWebSocket);
+    }
+    // The socket may have closed while it was being caught up.
+    if (!dataWebSocket.isOpen()) {
+      _sockets.remove(dataWebSocket);
+    }
+  }
+
+  /**
+   * @param epoch the epoch presented by a reconnecting client
+   * @param version the version presented by a reconnecting client
+   * @return the last version of this server instance the client saw, or -1 if
+   *         it saw none
+   */
+  long getLastVersion(String epoch, String version) {
+    if (!Long.toString(_epoch).equals(epoch)) {
+      return -1;
+    }
+    return parseVersion(version);
+  }
+
+  /**
+   * @return the frames that bring a client that last saw the specified version
+   *         up to date: the frames it missed, or else the current keyframe
+   */
+  List<String> getCatchUpFrames(long lastVersion) {
+    synchronized (_frameLock) {
+      List<String> frames = getFramesSince(lastVersion);
+      if (frames == null) {
+        frames = Collections.singletonList(getKeyframe());
+      }
+      return frames;
+    }
+  }
+
+  long getVersion() {
+    synchronized (_frameLock) {
+      return _version;
+    }
+  }
+
+  /**
+   * @return the frames after the specified version, or null if the version is
+   *         unknown, older than the frame log, or the frames together are
+   *         larger than the keyframe
+   */
+  private List<String> getFramesSince(long version) {
+    if (version < 0 || version > _version) {
+      return null;
+    }
+    List<String> frames = new ArrayList<String>();
+    if (version == _version) {
+      return frames;
+    }
+    if (_frameLog.isEmpty() || _frameLog.getFirst().getVersion() > version + 1) {
+      return null;
+    }
+    long length = 0;
+    long keyframeLength = getKeyframe().length();
+    for (Frame frame : _frameLog) {
+      if (frame.getVersion() > version) {
+        length += frame.getJson().length();
+        if (length > keyframeLength) {
+          return null;
+        }
+        frames.add(frame.getJson());
+      }
+    }
+    return frames;
+  }
+
+  /**
+   * The keyframe is built at most once per version and shared by every client
+   * that needs it.
+   */
+  private String getKeyframe() {
+    if (_keyframeVersion != _version) {
+      _keyframe = getFrameAsString(_version, true,
+          _visualierService.getAllVehicles());
+      _keyframeVersion = _version;
+    }
+    return _keyframe;
+  }
+
+  private String getFrameAsString(long version, boolean keyframe,
+      List<Vehicle> vehicles) {
     try {
-      JSONArray array = new JSONArray();
-      for (Vehicle vehicle : vehicles) {
-        JSONObject obj = new JSONObject();
-        obj.put("id", vehicle.getId());
-        obj.put("lat", vehicle.getLat());
-        obj.put("lon", vehicle.getLon());
-        obj.put("lastUpdate", vehicle.getLastUpdate());
-        array.put(obj);
-      }
-      return array.toString();
+      JSONObject frame = new JSONObject();
+      frame.put("epoch", _epoch);
+      frame.put("version", version);
+      frame.put("keyframe", keyframe);
+      frame.put("vehicles", getVehiclesAsJson(vehicles, !keyframe));
+      return frame.toString();
     } catch (JSONException ex) {
       throw new IllegalStateException(ex);
     }
   }
 
-  class DataWebSocket implements WebSocket {
+  /**
+   * @param includePaths whether to include the shape path traveled since the
+   *          previous update, which is only meaningful to clients that saw
+   *          that update
+   */
+  private JSONArray getVehiclesAsJson(List<Vehicle> vehicles,
+      boolean includePaths) throws JSONException {
+    JSONArray array = new JSONArray();
+    for (Vehicle vehicle : vehicles) {
+      JSONObject obj = new JSONObject();
+      obj.put("id", vehicle.getId());
+      obj.put("lat", vehicle.getLat());
+      obj.put("lon", vehicle.getLon());
+      obj.put("lastUpdate", vehicle.getLastUpdate());
+      if (vehicle.getRouteColor() != null) {
+        obj.put("routeColor", vehicle.getRouteColor());
+      }
+      if (includePaths && vehicle.getPath() != null) {
+        JSONArray path = new JSONArray();
+        for (ShapePoint point : vehicle.getPath()) {
+          JSONArray p = new JSONArray();
+          p.put(point.getLat());
+          p.put(point.getLon());
+          path.put(p);
+        }
+        obj.put("path", path);
+      }
+      array.put(obj);
+    }
+    return array;
+  }
+
+  private static long parseVersion(String value) {
+    if (value == null) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  private static class Frame {
+
+    private final long version;
+
+    private final String json;
+
+    public Frame(long version, String json) {
+      this.version = version;
+      this.json = json;
+    }
+
+    public long getVersion() {
+      return version;
+    }
+
+    public String getJson() {
+      return json;
+    }
+  }
+
+  private class JoinTask implements Runnable {
+    @Override
+    public void run() {
+      try {
+        for (int i = 0; i < MAX_JOINS_PER_INTERVAL; ++i) {
+          DataWebSocket socket = _pendingSockets.poll();
+          if (socket == null) {
+            break;
+          }
+          if (socket.isOpen()) {
+            admitSocket(socket);
+          }
+        }
+      } catch (Exception ex) {
+        _log.error("error admitting WebSocket clients", ex);
+      }
+    }
+  }
+
+  private class StallCheckTask implements Runnable {
+    @Override
+    public void run() {
+      try {
+        long now = System.currentTimeMillis();
+        for (DataWebSocket socket : _sockets) {
+          if (socket.isStalled(now)) {
+            _log.warn("disconnecting stalled WebSocket");
+            socket.disconnect();
+          }
+        }
+      } catch (Exception ex) {
+        _log.error("error checking for stalled WebSocket clients", ex);
+      }
+    }
+  }
+
+  class DataWebSocket implements WebSocket, Runnable {
+
+    private final long _lastVersion;
+
+    private volatile Connection _connection;
+
+    /**
+     * Frames waiting to be sent; guarded by this socket.
+     */
+    private final Deque<String> _pendingFrames = new ArrayDeque<String>();
+
+    private boolean _draining = false;
 
-    private Connection _connection;
+    /**
+     * When the send in progress started, or 0 if no send is in progress.
+     */
+    private volatile long _sendStartTime = 0;
+
+    public DataWebSocket(long lastVersion) {
+      _lastVersion = lastVersion;
+    }
+
+    public long getLastVersion() {
+      return _lastVersion;
+    }
+
+    public boolean isOpen() {
+      return _connection != null && _connection.isOpen();
+    }
 
     @Override
     public void onOpen(Connection connection) {
       _connection = connection;
-      _connection.setMaxIdleTime(WEB_SOCKET_IDLE_TIMEOUT_MS);
+      _connection.setMaxIdleTime(_webSocketIdleTimeout);
       addSocket(this);
     }
 
@@ -132,11 +488,79 @@ public class DataServlet extends WebSocketServlet implements VehicleListener {
       removeSocket(this);
     }
 
+    public boolean isStalled(long now) {
+      long sendStartTime = _sendStartTime;
+      return sendStartTime != 0 && now - sendStartTime > MAX_SEND_STALL_MS;
+    }
+
+    /**
+     * Tears down the connection without a close handshake. A close frame
+     * would have to wait for the blocked send to finish, whereas closing the
+     * endpoint fails that send and frees its sender thread.
+     */
+    public void disconnect() {
+      removeSocket(this);
+      Connection connection = _connection;
+      if (connection != null) {
+        connection.disconnect();
+      }
+    }
+
+    /**
+     * Queues a frame for sending. Must be called while holding the frame
+     * lock, so that frames are queued in version order.
+     */
     public void sendVehicles(String vehiclesAsJsonString) {
+      synchronized (this) {
+        if (_pendingFrames.size() < MAX_PENDING_FRAMES) {
+          _pendingFrames.addLast(vehiclesAsJsonString);
+        } else {
+          // The client is falling behind. The current keyframe already
+          // includes this frame's changes and supersedes everything queued.
+          _pendingFrames.clear();
+          _pendingFrames.addLast(getKeyframe());
+        }
+        if (_draining) {
+          return;
+        }
+        _draining = true;
+      }
+      try {
+        _sendExecutor.execute(this);
+      } catch (RejectedExecutionException ex) {
+        // The servlet is shutting down.
+      }
+    }
+
+    /**
+     * Drains the pending frames on a sender thread.
+     */
+    @Override
+    public void run() {
+      while (true) {
+        String frame;
+        synchronized (this) {
+          frame = _pendingFrames.pollFirst();
+          if (frame == null) {
+            _draining = false;
+            return;
+          }
+        }
+        send(frame);
+      }
+    }
+
+    private void send(String vehiclesAsJsonString) {
+      if (!isOpen()) {
+        return;
+      }
+      _sendStartTime = System.currentTimeMillis();
       try {
         _connection.sendMessage(vehiclesAsJsonString);
       } catch (IOException ex) {
         _log.warn("error sending WebSocket message", ex);
+      } finally {
+        _sendStartTime = 0;
       }
     }
   }
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.visualizer;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal streaming reader for GTFS csv files. Rows are read one at a time
+ * so that large files such as shapes.txt never have to be held in memory as
+ * strings.
+ */
+class GtfsCsvReader implements Closeable {
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final BufferedReader _reader;
+
+  private final String[] _header;
+
+  private final List<String> _fields = new ArrayList<String>();
+
+  private final StringBuilder _field = new StringBuilder();
+
+  public GtfsCsvReader(InputStream in) throws IOException {
+    _reader = new BufferedReader(new InputStreamReader(in, UTF_8), 1 << 16);
+    String[] header = next();
+    if (header == null) {
+      throw new IOException("missing csv header");
+    }
+    // Strip a UTF-8 byte order mark, which some agencies include.
+    if (header.length > 0 && header[0].startsWith("\uFEFF")) {
+      header[0] = header[0].substring(1);
+    }
+    for (int i = 0; i < header.length; ++i) {
+      header[i] = header[i].trim();
+    }
+    _header = header;
+  }
+
+  /**
+   * @param name the column name
+   * @return the index of the column, or -1 if it is not present
+   */
+  public int getColumn(String name) {
+    for (int i = 0; i < _header.length; ++i) {
+      if (_header[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  public int getRequiredColumn(String name) throws IOException {
+    int index = getColumn(name);
+    if (index == -1) {
+      throw new IOException("missing required csv column: " + name);
+    }
+    return index;
+  }
+
+  /**
+   * @return the fields of the next non-empty row, or null at end of input
+   */
+  public String[] next() throws IOException {
+    String line;
+    do {
+      line = _reader.readLine();
+      if (line == null) {
+        return null;
+      }
+    } while (line.isEmpty());
+
+    _fields.clear();
+    _field.setLength(0);
+    boolean quoted = false;
+    int i = 0;
+    while (true) {
+      if (i == line.length()) {
+        if (!quoted) {
+          break;
+        }
+        // A quoted field containing a line break.
+        line = _reader.readLine();
+        if (line == null) {
+          break;
+        }
+        _field.append('\n');
+        i = 0;
+        continue;
+      }
+      char c = line.charAt(i++);
+      if (quoted) {
+        if (c == '"') {
+          if (i < line.length() && line.charAt(i) == '"') {
+            _field.append('"');
+            i++;
+          } else {
+            quoted = false;
+          }
+        } else {
+          _field.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+      } else if (c == ',') {
+        _fields.add(_field.toString());
+        _field.setLength(0);
+      } else {
+        _field.append(c);
+      }
+    }
+    _fields.add(_field.toString());
+    return _fields.toArray(new String[_fields.size()]);
+  }
+
+  @Override
+  public void close() throws IOException {
+    _reader.close();
+  }
+}
@@ -0,0 +1,540 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.visualizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.annotation.PostConstruct;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Loads the shapes, trips and routes of a static GTFS feed so that realtime
+ * vehicle positions can be snapped to the shape of the trip they are serving.
+ *
+ * Shape points for all shapes are stored in flat primitive arrays, ordered by
+ * shape and then by sequence, with fixed-point coordinates and float
+ * distances (12 bytes per point), so that feeds with millions of shape points
+ * stay compact and snapping a position only touches the points of a single
+ * shape.
+ */
+@Singleton
+public class GtfsShapeService {
+
+  private static final Logger _log = LoggerFactory.getLogger(GtfsShapeService.class);
+
+  private static final double METERS_PER_DEGREE = 6371010.0 * Math.PI / 180;
+
+  /**
+   * Positions further than this from their trip's shape are left unsnapped.
+   */
+  private static final double MAX_SNAP_DISTANCE_METERS = 200;
+
+  /**
+   * When a vehicle was previously snapped to the same shape, we look for the
+   * first stretch of the shape near the new position that is no more than
+   * this far behind the previous snap, and not implausibly far ahead of it, so
+   * that shapes that double back on the same street don't send the vehicle to
+   * the wrong leg.
+   */
+  private static final double MAX_BACKTRACK_METERS = 50;
+
+  /**
+   * Paths along the shape that are longer than this multiple of the straight
+   * line distance between the two snapped positions, plus
+   * {@link #MAX_PATH_SLACK_METERS}, are treated as mismatches.
+   */
+  private static final double MAX_PATH_STRETCH = 3;
+
+  private static final double MAX_PATH_SLACK_METERS = 500;
+
+  /**
+   * Coordinates are stored as fixed-point integers in units of 1e-7 degrees,
+   * which is about a centimeter.
+   */
+  private static final double FIXED_POINT_SCALE = 1e7;
+
+  private File _gtfsPath;
+
+  private volatile boolean _loaded = false;
+
+  /**
+   * Indexed by shape; the points of shape i are in [_shapeOffsets[i],
+   * _shapeOffsets[i + 1]).
+   */
+  private int[] _shapeOffsets;
+
+  private int[] _lats;
+
+  private int[] _lons;
+
+  /**
+   * Distance in meters from the first point of the shape.
+   */
+  private float[] _distances;
+
+  private Map<String, Integer> _shapeIndicesByTripId = new HashMap<String, Integer>();
+
+  private Map<String, String> _routeColorsByTripId = new HashMap<String, String>();
+
+  public void setGtfsPath(File gtfsPath) {
+    _gtfsPath = gtfsPath;
+  }
+
+  public boolean isLoaded() {
+    return _loaded;
+  }
+
+  @PostConstruct
+  public void start() throws IOException {
+    if (_gtfsPath == null) {
+      return;
+    }
+    long t = System.currentTimeMillis();
+    ZipFile zipFile = _gtfsPath.isDirectory() ? null : new ZipFile(_gtfsPath);
+    try {
+      Map<String, Integer> shapeIndicesById = loadShapes(zipFile);
+      Map<String, String> routeColorsByRouteId = loadRouteColors(zipFile);
+      loadTrips(zipFile, shapeIndicesById, routeColorsByRouteId);
+    } finally {
+      if (zipFile != null) {
+        zipFile.close();
+      }
+    }
+    _loaded = true;
+    _log.info("loaded " + (_shapeOffsets.length - 1) + " shapes with "
+        + _lats.length + " points and " + _shapeIndicesByTripId.size()
+        + " trips in " + (System.currentTimeMillis() - t) + " ms");
+  }
+
+  public String getRouteColorForTrip(String tripId) {
+    return _routeColorsByTripId.get(tripId);
+  }
+
+  /**
+   * @param tripId the trip the vehicle is serving
+   * @param previous the vehicle's previous snap, or null if there is none
+   * @return the closest location along the trip's shape, or null if the trip
+   *         has no shape or the position is too far away from it
+   */
+  public ShapeSnap snap(String tripId, double lat, double lon,
+      ShapeSnap previous) {
+    Integer shapeIndex = _shapeIndicesByTripId.get(tripId);
+    if (shapeIndex == null) {
+      return null;
+    }
+    int from = _shapeOffsets[shapeIndex];
+    int to = _shapeOffsets[shapeIndex + 1];
+    if (to - from < 2) {
+      return null;
+    }
+
+    // The forward stretch must also be plausibly reachable from the previous
+    // snap, by the same measure as getPath(), so that jitter just behind the
+    // previous snap can't send the vehicle to a far later leg of the shape.
+    double minForwardAlong = Double.NaN;
+    double maxForwardAlong = Double.NaN;
+    if (previous != null && previous.getShapeIndex() == shapeIndex) {
+      ShapePoint point = getPoint(shapeIndex, previous.getDistance());
+      double straightLine = getDistance(point.getLat(), point.getLon(), lat,
+          lon);
+      minForwardAlong = previous.getDistance() - MAX_BACKTRACK_METERS;
+      maxForwardAlong = previous.getDistance() + MAX_PATH_STRETCH
+          * straightLine + MAX_PATH_SLACK_METERS;
+    }
+
+    // Work in an equirectangular projection centered on the position, which
+    // is accurate enough at the scale of a single trip.
+    double cosLat = Math.cos(Math.toRadians(lat));
+    double maxDistance = MAX_SNAP_DISTANCE_METERS / METERS_PER_DEGREE;
+    double maxDistance2 = maxDistance * maxDistance;
+    double ax = (getLon(from) - lon) * cosLat;
+    double ay = getLat(from) - lat;
+    double bestDistance2 = Double.POSITIVE_INFINITY;
+    double bestAlong = 0;
+    double forwardDistance2 = Double.POSITIVE_INFINITY;
+    double forwardAlong = 0;
+
+    for (int i = from + 1; i < to; ++i) {
+      double bx = (getLon(i) - lon) * cosLat;
+      double by = getLat(i) - lat;
+      double dx = bx - ax;
+      double dy = by - ay;
+      double length2 = dx * dx + dy * dy;
+      double r = length2 == 0 ? 0 : -(ax * dx + ay * dy) / length2;
+      r = Math.max(0, Math.min(1, r));
+      double cx = ax + r * dx;
+      double cy = ay + r * dy;
+      double distance2 = cx * cx + cy * cy;
+      double along = _distances[i - 1] + r * (_distances[i] - _distances[i - 1]);
+      if (distance2 < bestDistance2) {
+        bestDistance2 = distance2;
+        bestAlong = along;
+      }
+      if (along >= minForwardAlong && along <= maxForwardAlong) {
+        if (distance2 <= maxDistance2) {
+          // Within the first stretch of the shape ahead of the previous snap
+          // that passes near the position.
+          if (distance2 < forwardDistance2) {
+            forwardDistance2 = distance2;
+            forwardAlong = along;
+          }
+        } else if (forwardDistance2 != Double.POSITIVE_INFINITY) {
+          break;
+        }
+      }
+      ax = bx;
+      ay = by;
+    }
+
+    if (forwardDistance2 != Double.POSITIVE_INFINITY) {
+      return new ShapeSnap(shapeIndex, forwardAlong);
+    }
+    if (bestDistance2 > maxDistance2) {
+      return null;
+    }
+    return new ShapeSnap(shapeIndex, bestAlong);
+  }
+
+  /**
+   * @return the portion of the shape traveled between two snapped positions,
+   *         or null if they are not on the same shape, the vehicle did not
+   *         move forward along it, or the path is implausibly long compared
+   *         to the distance between the two positions
+   */
+  public List<ShapePoint> getPath(ShapeSnap from, ShapeSnap to) {
+    if (from == null || to == null || from.getShapeIndex() != to.getShapeIndex()
+        || to.getDistance() <= from.getDistance()) {
+      return null;
+    }
+    int shapeIndex = from.getShapeIndex();
+    int end = _shapeOffsets[shapeIndex + 1];
+
+    ShapePoint first = getPoint(shapeIndex, from.getDistance());
+    ShapePoint last = getPoint(shapeIndex, to.getDistance());
+    double straightLine = getDistance(first.getLat(), first.getLon(),
+        last.getLat(), last.getLon());
+    if (to.getDistance() - from.getDistance() > MAX_PATH_STRETCH * straightLine
+        + MAX_PATH_SLACK_METERS) {
+      return null;
+    }
+
+    List<ShapePoint> path = new ArrayList<ShapePoint>();
+    path.add(first);
+    for (int i = getIndexAfter(shapeIndex, from.getDistance()); i < end
+        && _distances[i] < to.getDistance(); ++i) {
+      path.add(new ShapePoint(getLat(i), getLon(i)));
+    }
+    path.add(last);
+    return path;
+  }
+
+  private double getLat(int i) {
+    return _lats[i] / FIXED_POINT_SCALE;
+  }
+
+  private double getLon(int i) {
+    return _lons[i] / FIXED_POINT_SCALE;
+  }
+
+  private ShapePoint getPoint(int shapeIndex, double distance) {
+    int start = _shapeOffsets[shapeIndex];
+    int end = _shapeOffsets[shapeIndex + 1];
+    int i = getIndexAfter(shapeIndex, distance);
+    if (i == start) {
+      return new ShapePoint(getLat(start), getLon(start));
+    }
+    if (i == end) {
+      return new ShapePoint(getLat(end - 1), getLon(end - 1));
+    }
+    double r = (distance - _distances[i - 1])
+        / (_distances[i] - _distances[i - 1]);
+    return new ShapePoint(getLat(i - 1) + r * (getLat(i) - getLat(i - 1)),
+        getLon(i - 1) + r * (getLon(i) - getLon(i - 1)));
+  }
+
+  /**
+   * @return the index of the first point of the shape strictly beyond the
+   *         specified distance, or the end of the shape if there is none
+   */
+  private int getIndexAfter(int shapeIndex, double distance) {
+    int low = _shapeOffsets[shapeIndex];
+    int high = _shapeOffsets[shapeIndex + 1];
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (_distances[mid] <= distance) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private Map<String, Integer> loadShapes(ZipFile zipFile) throws IOException {
+
+    Map<String, Integer> shapeIndicesById = new HashMap<String, Integer>();
+    int n = 0;
+    int[] shapeIndices = new int[1024];
+    int[] sequences = new int[1024];
+    int[] lats = new int[1024];
+    int[] lons = new int[1024];
+
+    InputStream in = openEntry(zipFile, "shapes.txt");
+    if (in != null) {
+      try {
+        GtfsCsvReader reader = new GtfsCsvReader(in);
+        int shapeIdColumn = reader.getRequiredColumn("shape_id");
+        int latColumn = reader.getRequiredColumn("shape_pt_lat");
+        int lonColumn = reader.getRequiredColumn("shape_pt_lon");
+        int sequenceColumn = reader.getRequiredColumn("shape_pt_sequence");
+        int skipped = 0;
+        String[] row;
+        while ((row = reader.next()) != null) {
+          int sequence;
+          double lat, lon;
+          try {
+            sequence = Integer.parseInt(getField(row, sequenceColumn));
+            lat = Double.parseDouble(getField(row, latColumn));
+            lon = Double.parseDouble(getField(row, lonColumn));
+          } catch (NumberFormatException ex) {
+            skipped++;
+            continue;
+          }
+          if (sequence < 0 || Math.abs(lat) > 90 || Math.abs(lon) > 180) {
+            skipped++;
+            continue;
+          }
+          String shapeId = getField(row, shapeIdColumn);
+          Integer shapeIndex = shapeIndicesById.get(shapeId);
+          if (shapeIndex == null) {
+            shapeIndex = shapeIndicesById.size();
+            shapeIndicesById.put(shapeId, shapeIndex);
+          }
+          if (n == shapeIndices.length) {
+            int capacity = n + (n >> 1);
+            shapeIndices = Arrays.copyOf(shapeIndices, capacity);
+            sequences = Arrays.copyOf(sequences, capacity);
+            lats = Arrays.copyOf(lats, capacity);
+            lons = Arrays.copyOf(lons, capacity);
+          }
+          shapeIndices[n] = shapeIndex;
+          sequences[n] = sequence;
+          lats[n] = (int) Math.round(lat * FIXED_POINT_SCALE);
+          lons[n] = (int) Math.round(lon * FIXED_POINT_SCALE);
+          n++;
+        }
+        if (skipped > 0) {
+          _log.warn("skipped malformed shape points: " + skipped);
+        }
+      } finally {
+        in.close();
+      }
+    } else {
+      _log.warn("no shapes.txt found in " + _gtfsPath);
+    }
+
+    // Group the points by shape with a counting sort, then order each shape
+    // by sequence. Most feeds already list points in order, so the per-shape
+    // sort is usually skipped.
+    int shapeCount = shapeIndicesById.size();
+    int[] offsets = new int[shapeCount + 1];
+    for (int i = 0; i < n; ++i) {
+      offsets[shapeIndices[i] + 1]++;
+    }
+    for (int s = 0; s < shapeCount; ++s) {
+      offsets[s + 1] += offsets[s];
+    }
+    int[] next = Arrays.copyOf(offsets, shapeCount);
+    int[] order = new int[n];
+    for (int i = 0; i < n; ++i) {
+      order[next[shapeIndices[i]]++] = i;
+    }
+    shapeIndices = null;
+    next = null;
+    for (int s = 0; s < shapeCount; ++s) {
+      sortBySequence(order, offsets[s], offsets[s + 1], sequences);
+    }
+    sequences = null;
+
+    // Permute the staging arrays into their final order one at a time, so
+    // only one extra coordinate array is alive at once.
+    _shapeOffsets = offsets;
+    _lats = permute(lats, order, n);
+    lats = null;
+    _lons = permute(lons, order, n);
+    lons = null;
+    order = null;
+
+    _distances = new float[n];
+    for (int s = 0; s < shapeCount; ++s) {
+      double distance = 0;
+      for (int i = offsets[s] + 1; i < offsets[s + 1]; ++i) {
+        distance += getDistance(getLat(i - 1), getLon(i - 1), getLat(i),
+            getLon(i));
+        _distances[i] = (float) distance;
+      }
+    }
+    return shapeIndicesById;
+  }
+
+  private static int[] permute(int[] values, int[] order, int n) {
+    int[] permuted = new int[n];
+    for (int i = 0; i < n; ++i) {
+      permuted[i] = values[order[i]];
+    }
+    return permuted;
+  }
+
+  private void sortBySequence(int[] order, int from, int to, int[] sequences) {
+    boolean sorted = true;
+    for (int i = from + 1; i < to && sorted; ++i) {
+      sorted = sequences[order[i - 1]] <= sequences[order[i]];
+    }
+    if (sorted) {
+      return;
+    }
+    long[] keys = new long[to - from];
+    for (int i = from; i < to; ++i) {
+      keys[i - from] = ((long) sequences[order[i]] << 32) | order[i];
+    }
+    Arrays.sort(keys);
+    for (int i = from; i < to; ++i) {
+      order[i] = (int) keys[i - from];
+    }
+  }
+
+  private Map<String, String> loadRouteColors(ZipFile zipFile)
+      throws IOException {
+    Map<String, String> routeColorsByRouteId = new HashMap<String, String>();
+    InputStream in = openEntry(zipFile, "routes.txt");
+    if (in == null) {
+      return routeColorsByRouteId;
+    }
+    try {
+      GtfsCsvReader reader = new GtfsCsvReader(in);
+      int routeIdColumn = reader.getRequiredColumn("route_id");
+      int routeColorColumn = reader.getColumn("route_color");
+      if (routeColorColumn == -1) {
+        return routeColorsByRouteId;
+      }
+      String[] row;
+      while ((row = reader.next()) != null) {
+        String color = getField(row, routeColorColumn);
+        if (color.matches("[0-9a-fA-F]{6}")) {
+          routeColorsByRouteId.put(getField(row, routeIdColumn), "#" + color);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return routeColorsByRouteId;
+  }
+
+  private void loadTrips(ZipFile zipFile, Map<String, Integer> shapeIndicesById,
+      Map<String, String> routeColorsByRouteId) throws IOException {
+    InputStream in = openEntry(zipFile, "trips.txt");
+    if (in == null) {
+      _log.warn("no trips.txt found in " + _gtfsPath);
+      return;
+    }
+    try {
+      GtfsCsvReader reader = new GtfsCsvReader(in);
+      int tripIdColumn = reader.getRequiredColumn("trip_id");
+      int routeIdColumn = reader.getRequiredColumn("route_id");
+      int shapeIdColumn = reader.getColumn("shape_id");
+      String[] row;
+      while ((row = reader.next()) != null) {
+        String tripId = getField(row, tripIdColumn);
+        if (shapeIdColumn != -1) {
+          Integer shapeIndex = shapeIndicesById.get(getField(row, shapeIdColumn));
+          if (shapeIndex != null) {
+            _shapeIndicesByTripId.put(tripId, shapeIndex);
+          }
+        }
+        String routeColor = routeColorsByRouteId.get(getField(row,
+            routeIdColumn));
+        if (routeColor != null) {
+          _routeColorsByTripId.put(tripId, routeColor);
+        }
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @return a stream for the named file of the feed, or null if the feed does
+   *         not include it
+   */
+  private InputStream openEntry(ZipFile zipFile, String name)
+      throws IOException {
+    if (zipFile == null) {
+      File file = new File(_gtfsPath, name);
+      return file.exists() ? new FileInputStream(file) : null;
+    }
+    ZipEntry entry = zipFile.getEntry(name);
+    return entry != null ? zipFile.getInputStream(entry) : null;
+  }
+
+  private static String getField(String[] row, int column) {
+    return column < row.length ? row[column].trim() : "";
+  }
+
+  private static double getDistance(double lat1, double lon1, double lat2,
+      double lon2) {
+    double cosLat = Math.cos(Math.toRadians((lat1 + lat2) / 2));
+    double dx = (lon2 - lon1) * cosLat;
+    double dy = lat2 - lat1;
+    return Math.sqrt(dx * dx + dy * dy) * METERS_PER_DEGREE;
+  }
+
+  /**
+   * A location along a shape, as returned by
+   * {@link GtfsShapeService#snap(String, double, double, ShapeSnap)}.
+   */
+  public static class ShapeSnap {
+
+    private final int shapeIndex;
+
+    private final double distance;
+
+    ShapeSnap(int shapeIndex, double distance) {
+      this.shapeIndex = shapeIndex;
+      this.distance = distance;
+    }
+
+    public int getShapeIndex() {
+      return shapeIndex;
+    }
+
+    public double getDistance() {
+      return distance;
+    }
+  }
+}
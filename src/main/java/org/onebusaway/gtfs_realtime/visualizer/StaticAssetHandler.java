@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.visualizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.io.Buffer;
+import org.eclipse.jetty.io.ByteArrayBuffer;
+import org.eclipse.jetty.server.AbstractHttpConnection;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+
+/**
+ * Serves the visualizer's static assets from memory.
+ *
+ * Assets are read from the classpath and gzipped once at startup. The
+ * script, stylesheet and image are also published under content-hashed names
+ * (e.g. index.3f2a9c01b4.js), which index.html and index.js are rewritten to
+ * reference. Hashed names never change content, so browsers may cache them
+ * indefinitely; index.html and the original names are revalidated with an
+ * ETag, so a page reload after a deploy costs a single small request when
+ * nothing changed.
+ */
+public class StaticAssetHandler extends AbstractHandler {
+
+  private static final String RESOURCE_PATH = "org/onebusaway/gtfs_realtime/visualizer/";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+
+  private static final String CACHE_REVALIDATE = "no-cache";
+
+  private final Map<String, Asset> _assetsByPath = new HashMap<String, Asset>();
+
+  @Override
+  protected void doStart() throws Exception {
+    String image = addHashedAsset("WhiteCircle8.png", "image/png",
+        readResource("WhiteCircle8.png"));
+    String css = addHashedAsset("index.css", "text/css; charset=utf-8",
+        readResource("index.css"));
+
+    String js = readResourceAsString("index.js");
+    js = js.replace("/WhiteCircle8.png", "/" + image);
+    js = addHashedAsset("index.js", "application/javascript; charset=utf-8",
+        js.getBytes(UTF_8));
+
+    String html = readResourceAsString("index.html");
+    html = html.replace("\"index.js\"", "\"" + js + "\"");
+    html = html.replace("\"index.css\"", "\"" + css + "\"");
+    Asset index = new Asset("text/html; charset=utf-8", html.getBytes(UTF_8),
+        CACHE_REVALIDATE);
+    _assetsByPath.put("/", index);
+    _assetsByPath.put("/index.html", index);
+
+    super.doStart();
+  }
+
+  @Override
+  public void handle(String target, Request baseRequest,
+      HttpServletRequest request, HttpServletResponse response)
+      throws IOException, ServletException {
+
+    String method = request.getMethod();
+    if (!"GET".equals(method) && !"HEAD".equals(method)) {
+      return;
+    }
+    Asset asset = _assetsByPath.get(target);
+    if (asset == null) {
+      return;
+    }
+    baseRequest.setHandled(true);
+
+    // The gzipped variant gets its own ETag, as the bytes sent differ.
+    boolean gzip = asset.getGzipped() != null && acceptsGzip(request);
+    String eTag = gzip ? asset.getGzippedETag() : asset.getETag();
+    response.setHeader("Cache-Control", asset.getCacheControl());
+    response.setHeader("ETag", eTag);
+    if (asset.getGzipped() != null) {
+      response.setHeader("Vary", "Accept-Encoding");
+    }
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    byte[] content = asset.getContent();
+    if (gzip) {
+      content = asset.getGzipped();
+      response.setHeader("Content-Encoding", "gzip");
+    }
+    response.setContentType(asset.getContentType());
+    response.setContentLength(content.length);
+    if ("GET".equals(method)) {
+      ServletOutputStream out = response.getOutputStream();
+      if (out instanceof AbstractHttpConnection.Output) {
+        // Hand the cached bytes to the connection as-is, without copying them
+        // through the response buffer. The read-only view is cheap and keeps
+        // concurrent requests from sharing buffer indices.
+        ((AbstractHttpConnection.Output) out).sendContent(new ByteArrayBuffer(
+            content, 0, content.length, Buffer.READONLY));
+      } else {
+        out.write(content);
+      }
+    }
+  }
+
+  /**
+   * Registers the asset under both its original name, which is revalidated on
+   * every use, and a content-hashed name, which is cached indefinitely.
+   *
+   * @return the content-hashed name
+   */
+  private String addHashedAsset(String name, String contentType,
+      byte[] content) {
+    Asset revalidated = new Asset(contentType, content, CACHE_REVALIDATE);
+    _assetsByPath.put("/" + name, revalidated);
+
+    int dot = name.lastIndexOf('.');
+    String hashedName = name.substring(0, dot) + "."
+        + revalidated.getHash().substring(0, 10) + name.substring(dot);
+    _assetsByPath.put("/" + hashedName, new Asset(revalidated, CACHE_IMMUTABLE));
+    return hashedName;
+  }
+
+  /**
+   * @return true if the Accept-Encoding header allows gzip, honoring q-values
+   *         such as "gzip;q=0" and falling back to a "*" entry
+   */
+  static boolean acceptsGzip(HttpServletRequest request) {
+    return acceptsGzip(request.getHeader("Accept-Encoding"));
+  }
+
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return false;
+    }
+    double gzipQuality = -1;
+    double wildcardQuality = -1;
+    for (String entry : acceptEncoding.split(",")) {
+      String[] parts = entry.split(";");
+      String coding = parts[0].trim().toLowerCase();
+      double quality = 1;
+      for (int i = 1; i < parts.length; ++i) {
+        String param = parts[i].trim();
+        if (param.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(param.substring(2).trim());
+          } catch (NumberFormatException ex) {
+            quality = 0;
+          }
+        }
+      }
+      if (coding.equals("gzip") || coding.equals("x-gzip")) {
+        gzipQuality = quality;
+      } else if (coding.equals("*")) {
+        wildcardQuality = quality;
+      }
+    }
+    if (gzipQuality >= 0) {
+      return gzipQuality > 0;
+    }
+    return wildcardQuality > 0;
+  }
+
+  private static String readResourceAsString(String name) throws IOException {
+    return new String(readResource(name), UTF_8);
+  }
+
+  private static byte[] readResource(String name) throws IOException {
+    InputStream in = StaticAssetHandler.class.getClassLoader().getResourceAsStream(
+        RESOURCE_PATH + name);
+    if (in == null) {
+      throw new IOException("missing resource: " + RESOURCE_PATH + name);
+    }
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int n;
+      while ((n = in.read(buffer)) != -1) {
+        out.write(buffer, 0, n);
+      }
+      return out.toByteArray();
+    } finally {
+      in.close();
+    }
+  }
+
+  private static class Asset {
+
+    private final String contentType;
+
+    private final byte[] content;
+
+    private final byte[] gzipped;
+
+    private final String hash;
+
+    private final String eTag;
+
+    private final String gzippedETag;
+
+    private final String cacheControl;
+
+    public Asset(String contentType, byte[] content, String cacheControl) {
+      this.contentType = contentType;
+      this.content = content;
+      this.cacheControl = cacheControl;
+      this.hash = getHash(content);
+      this.eTag = "\"" + hash + "\"";
+      this.gzippedETag = "\"" + hash + "-gzip\"";
+      this.gzipped = contentType.startsWith("image/") ? null : gzip(content);
+    }
+
+    public Asset(Asset asset, String cacheControl) {
+      this.contentType = asset.contentType;
+      this.content = asset.content;
+      this.gzipped = asset.gzipped;
+      this.hash = asset.hash;
+      this.eTag = asset.eTag;
+      this.gzippedETag = asset.gzippedETag;
+      this.cacheControl = cacheControl;
+    }
+
+    public String getContentType() {
+      return contentType;
+    }
+
+    public byte[] getContent() {
+      return content;
+    }
+
+    /**
+     * @return the gzipped content, or null if the content does not compress
+     */
+    public byte[] getGzipped() {
+      return gzipped;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public String getETag() {
+      return eTag;
+    }
+
+    public String getGzippedETag() {
+      return gzippedETag;
+    }
+
+    public String getCacheControl() {
+      return cacheControl;
+    }
+
+    private static byte[] gzip(byte[] content) {
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(content);
+        gzip.close();
+        byte[] gzipped = out.toByteArray();
+        return gzipped.length < content.length ? gzipped : null;
+      } catch (IOException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }
+
+    private static String getHash(byte[] content) {
+      try {
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(content);
+        StringBuilder b = new StringBuilder();
+        for (byte d : digest) {
+          b.append(Character.forDigit((d >> 4) & 0xf, 16));
+          b.append(Character.forDigit(d & 0xf, 16));
+        }
+        return b.toString();
+      } catch (NoSuchAlgorithmException ex) {
+        throw new IllegalStateException(ex);
+      }
+    }
+  }
+}
@@ -15,6 +15,10 @@
  */
 package org.onebusaway.gtfs_realtime.visualizer;
 
+import java.util.List;
+
+import org.onebusaway.gtfs_realtime.visualizer.GtfsShapeService.ShapeSnap;
+
 public class Vehicle {
   private String id;
 
@@ -24,6 +28,12 @@ public class Vehicle {
   
   private long lastUpdate;  
 
+  private String routeColor;
+
+  private List<ShapePoint> path;
+
+  private ShapeSnap shapeSnap;
+
   public String getId() {
     return id;
   }
@@ -55,4 +65,32 @@ public class Vehicle {
   public void setLastUpdate(long lastUpdate) {
     this.lastUpdate = lastUpdate;
   }
+
+  public String getRouteColor() {
+    return routeColor;
+  }
+
+  public void setRouteColor(String routeColor) {
+    this.routeColor = routeColor;
+  }
+
+  /**
+   * @return the portion of the trip's shape traveled since the previous
+   *         update, or null if the vehicle could not be matched to its shape
+   */
+  public List<ShapePoint> getPath() {
+    return path;
+  }
+
+  public void setPath(List<ShapePoint> path) {
+    this.path = path;
+  }
+
+  public ShapeSnap getShapeSnap() {
+    return shapeSnap;
+  }
+
+  public void setShapeSnap(ShapeSnap shapeSnap) {
+    this.shapeSnap = shapeSnap;
+  }
 }
@@ -15,6 +15,7 @@
  */
 package org.onebusaway.gtfs_realtime.visualizer;
 
+import java.io.File;
 import java.net.URI;
 import java.util.HashSet;
 import java.util.Set;
@@ -33,6 +34,22 @@ import com.google.inject.Module;
 public class VisualizerMain {
 
   private static final String ARG_VEHICLE_POSITIONS_URL = "vehiclePositionsUrl";
+
+  private static final String ARG_GTFS_PATH = "gtfsPath";
+
+  private static final String ARG_PORT = "port";
+
+  private static final String ARG_ACCEPTORS = "acceptors";
+
+  private static final String ARG_MIN_THREADS = "minThreads";
+
+  private static final String ARG_MAX_THREADS = "maxThreads";
+
+  private static final String ARG_SEND_THREADS = "sendThreads";
+
+  private static final String ARG_IDLE_TIMEOUT = "idleTimeout";
+
+  private static final String ARG_WEB_SOCKET_IDLE_TIMEOUT = "webSocketIdleTimeout";
   
   public static void main(String[] args) throws Exception {
     VisualizerMain m = new VisualizerMain();
@@ -60,17 +77,58 @@ public class VisualizerMain {
     VisualizerService service = injector.getInstance(VisualizerService.class);
     service.setVehiclePositionsUri(new URI(
         cli.getOptionValue(ARG_VEHICLE_POSITIONS_URL)));
-    injector.getInstance(VisualizerServer.class);
+    if (cli.hasOption(ARG_GTFS_PATH)) {
+      GtfsShapeService shapeService = injector.getInstance(GtfsShapeService.class);
+      shapeService.setGtfsPath(new File(cli.getOptionValue(ARG_GTFS_PATH)));
+    }
+
+    VisualizerServer server = injector.getInstance(VisualizerServer.class);
+    if (cli.hasOption(ARG_PORT)) {
+      server.setPort(getIntOption(cli, ARG_PORT));
+    }
+    if (cli.hasOption(ARG_ACCEPTORS)) {
+      server.setAcceptors(getIntOption(cli, ARG_ACCEPTORS));
+    }
+    if (cli.hasOption(ARG_MIN_THREADS)) {
+      server.setMinThreads(getIntOption(cli, ARG_MIN_THREADS));
+    }
+    if (cli.hasOption(ARG_MAX_THREADS)) {
+      server.setMaxThreads(getIntOption(cli, ARG_MAX_THREADS));
+    }
+    if (cli.hasOption(ARG_IDLE_TIMEOUT)) {
+      server.setIdleTimeout(getIntOption(cli, ARG_IDLE_TIMEOUT));
+    }
+
+    DataServlet dataServlet = injector.getInstance(DataServlet.class);
+    if (cli.hasOption(ARG_SEND_THREADS)) {
+      dataServlet.setSendThreads(getIntOption(cli, ARG_SEND_THREADS));
+    }
+    if (cli.hasOption(ARG_WEB_SOCKET_IDLE_TIMEOUT)) {
+      dataServlet.setWebSocketIdleTimeout(getIntOption(cli,
+          ARG_WEB_SOCKET_IDLE_TIMEOUT));
+    }
 
     LifecycleService lifecycleService = injector.getInstance(LifecycleService.class);
     lifecycleService.start();
   }
 
+  private static int getIntOption(CommandLine cli, String name) {
+    return Integer.parseInt(cli.getOptionValue(name));
+  }
+
   private void printUsage() {
     CommandLineInterfaceLibrary.printUsage(getClass());
   }
 
   private void buildOptions(Options options) {
     options.addOption(ARG_VEHICLE_POSITIONS_URL, true, "");
+    options.addOption(ARG_GTFS_PATH, true, "");
+    options.addOption(ARG_PORT, true, "");
+    options.addOption(ARG_ACCEPTORS, true, "");
+    options.addOption(ARG_MIN_THREADS, true, "");
+    options.addOption(ARG_MAX_THREADS, true, "");
+    options.addOption(ARG_SEND_THREADS, true, "");
+    options.addOption(ARG_IDLE_TIMEOUT, true, "");
+    options.addOption(ARG_WEB_SOCKET_IDLE_TIMEOUT, true, "");
   }
 }
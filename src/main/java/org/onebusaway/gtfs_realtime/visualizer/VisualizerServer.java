@@ -22,10 +22,10 @@ import javax.inject.Inject;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.handler.HandlerList;
-import org.eclipse.jetty.server.handler.ResourceHandler;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
 import org.eclipse.jetty.servlet.ServletHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
-import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,6 +37,17 @@ public class VisualizerServer {
 
   private int _port = 8080;
 
+  /**
+   * Options left at 0 keep Jetty's defaults.
+   */
+  private int _acceptors = 0;
+
+  private int _minThreads = 0;
+
+  private int _maxThreads = 0;
+
+  private int _idleTimeout = 0;
+
   private Server _server;
 
   @Inject
@@ -48,20 +59,61 @@ public class VisualizerServer {
     _port = port;
   }
 
+  public void setAcceptors(int acceptors) {
+    _acceptors = acceptors;
+  }
+
+  public void setMinThreads(int minThreads) {
+    _minThreads = minThreads;
+  }
+
+  public void setMaxThreads(int maxThreads) {
+    _maxThreads = maxThreads;
+  }
+
+  /**
+   * @param idleTimeout time in ms before an idle HTTP connection is closed
+   */
+  public void setIdleTimeout(int idleTimeout) {
+    _idleTimeout = idleTimeout;
+  }
+
   @PostConstruct
   public void start() throws Exception {
-    _server = new Server(_port);
-
-    ResourceHandler resourceHandler = new ResourceHandler();
-    resourceHandler.setWelcomeFiles(new String[] {"index.html"});
-    resourceHandler.setBaseResource(Resource.newClassPathResource("org/onebusaway/gtfs_realtime/visualizer"));
+    _server = new Server();
+
+    QueuedThreadPool threadPool = new QueuedThreadPool();
+    threadPool.setName("visualizer-http");
+    if (_maxThreads > 0) {
+      threadPool.setMaxThreads(_maxThreads);
+    }
+    if (_minThreads > 0) {
+      threadPool.setMinThreads(_minThreads);
+      threadPool.setMaxThreads(Math.max(_minThreads,
+          threadPool.getMaxThreads()));
+    }
+    _server.setThreadPool(threadPool);
+
+    // The select channel connector only ties up a thread while a request is
+    // being handled, so idle WebSocket viewers don't count against the pool.
+    SelectChannelConnector connector = new SelectChannelConnector();
+    connector.setPort(_port);
+    if (_acceptors > 0) {
+      connector.setAcceptors(_acceptors);
+    }
+    if (_idleTimeout > 0) {
+      connector.setMaxIdleTime(_idleTimeout);
+    }
+    _server.addConnector(connector);
+
+    StaticAssetHandler staticAssetHandler = new StaticAssetHandler();
 
     ServletHandler servletHandler = new ServletHandler();
     servletHandler.addServletWithMapping(new ServletHolder(_dataServlet),
         "/data.json");
 
     HandlerList handlers = new HandlerList();
-    handlers.setHandlers(new Handler[] {resourceHandler, servletHandler});
+    handlers.setHandlers(new Handler[] {staticAssetHandler, servletHandler});
 
     _server.setHandler(handlers);
 
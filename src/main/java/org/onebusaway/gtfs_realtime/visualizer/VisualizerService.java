@@ -31,12 +31,14 @@ import java.util.concurrent.TimeUnit;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.inject.Inject;
 import javax.inject.Singleton;
 
 import org.eclipse.jetty.websocket.WebSocket.Connection;
 import org.eclipse.jetty.websocket.WebSocket.OnBinaryMessage;
 import org.eclipse.jetty.websocket.WebSocketClient;
 import org.eclipse.jetty.websocket.WebSocketClientFactory;
+import org.onebusaway.gtfs_realtime.visualizer.GtfsShapeService.ShapeSnap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +47,7 @@ import com.google.transit.realtime.GtfsRealtime.FeedEntity;
 import com.google.transit.realtime.GtfsRealtime.FeedHeader;
 import com.google.transit.realtime.GtfsRealtime.FeedMessage;
 import com.google.transit.realtime.GtfsRealtime.Position;
+import com.google.transit.realtime.GtfsRealtime.TripDescriptor;
 import com.google.transit.realtime.GtfsRealtime.VehicleDescriptor;
 import com.google.transit.realtime.GtfsRealtime.VehiclePosition;
 
@@ -55,6 +58,8 @@ public class VisualizerService {
 
   private URI _vehiclePositionsUri;
 
+  private GtfsShapeService _shapeService;
+
   private ScheduledExecutorService _executor;
 
   private WebSocketClientFactory _webSocketFactory;
@@ -83,6 +88,11 @@ public class VisualizerService {
     _vehiclePositionsUri = uri;
   }
 
+  @Inject
+  public void setShapeService(GtfsShapeService shapeService) {
+    _shapeService = shapeService;
+  }
+
   @PostConstruct
   public void start() throws Exception {
     String scheme = _vehiclePositionsUri.getScheme();
@@ -180,10 +190,17 @@ public class VisualizerService {
       v.setLat(position.getLatitude());
       v.setLon(position.getLongitude());
       v.setLastUpdate(System.currentTimeMillis());
+      String tripId = getTripId(vehicle);
+      if (tripId != null) {
+        v.setRouteColor(_shapeService.getRouteColorForTrip(tripId));
+      }
 
       Vehicle existing = _vehiclesById.get(vehicleId);
       if (existing == null || existing.getLat() != v.getLat()
           || existing.getLon() != v.getLon()) {
+        if (tripId != null && _shapeService.isLoaded()) {
+          snapToShape(tripId, v, existing);
+        }
         _vehiclesById.put(vehicleId, v);
         update = true;
       } else {
@@ -219,6 +236,30 @@ public class VisualizerService {
     return desc.getId();
   }
 
+  private String getTripId(VehiclePosition vehicle) {
+    if (!vehicle.hasTrip()) {
+      return null;
+    }
+    TripDescriptor trip = vehicle.getTrip();
+    if (!trip.hasTripId()) {
+      return null;
+    }
+    return trip.getTripId();
+  }
+
+  /**
+   * Snaps the vehicle to its trip's shape and, if it was previously on the
+   * same shape, attaches the portion of the shape traveled since then so
+   * clients can draw the trail along the road instead of a straight line.
+   */
+  private void snapToShape(String tripId, Vehicle v, Vehicle existing) {
+    ShapeSnap previous = existing != null ? existing.getShapeSnap() : null;
+    ShapeSnap snap = _shapeService.snap(tripId, v.getLat(), v.getLon(),
+        previous);
+    v.setShapeSnap(snap);
+    v.setPath(_shapeService.getPath(previous, snap));
+  }
+
   private void updateRefreshInterval() {
     long t = System.currentTimeMillis();
     if (_mostRecentRefresh != -1) {
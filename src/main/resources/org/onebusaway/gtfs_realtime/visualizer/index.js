@@ -108,7 +108,7 @@ function Init() {
 			editable : false,
 			map : map,
 			path : path,
-			strokeColor : NextRandomColor(),
+			strokeColor : v_data.routeColor || NextRandomColor(),
 			strokeOpacity : 0.8,
 			strokeWeight : 4
 		};
@@ -131,6 +131,56 @@ function Init() {
 		};
 	};
 	
+	function CreateVehicleShapeOperation(vehicle, base, points) {
+		return function() {
+			var path = vehicle.path;
+			while (path.getLength() > base) {
+				path.pop();
+			}
+			for ( var i = 0; i < points.length; ++i) {
+				path.push(points[i]);
+			}
+			vehicle.marker.setPosition(points[points.length - 1]);
+		};
+	};
+
+	/**
+	 * When the server matched the vehicle to its trip's shape, we animate the
+	 * vehicle along the shape segment it traveled instead of a straight line.
+	 */
+	function AnimateAlongShape(vehicle, last, v_data, updates) {
+		var points = [ last ];
+		jQuery.each(v_data.path, function() {
+			points.push(new google.maps.LatLng(this[0], this[1]));
+		});
+		points.push(new google.maps.LatLng(v_data.lat, v_data.lon));
+
+		var distances = [ 0 ];
+		for ( var i = 1; i < points.length; ++i) {
+			var dlat = points[i].lat() - points[i - 1].lat();
+			var dlon = points[i].lng() - points[i - 1].lng();
+			distances.push(distances[i - 1] + Math.sqrt(dlat * dlat + dlon * dlon));
+		}
+		var total = distances[distances.length - 1];
+		var base = vehicle.path.getLength() - 1;
+
+		var j = 1;
+		for ( var i = 0; i < animation_steps; ++i) {
+			var target = total * (i + 1) / animation_steps;
+			while (j < points.length - 1 && distances[j] <= target) {
+				++j;
+			}
+			var span = distances[j] - distances[j - 1];
+			var r = span == 0 ? 1 : (target - distances[j - 1]) / span;
+			var a = points[j - 1];
+			var b = points[j];
+			var step = points.slice(1, j);
+			step.push(new google.maps.LatLng(a.lat() + r * (b.lat() - a.lat()),
+					a.lng() + r * (b.lng() - a.lng())));
+			updates[i].push(CreateVehicleShapeOperation(vehicle, base, step));
+		}
+	};
+	
 	var vehicles_by_id = {};
 	var animation_steps = 20;
 
@@ -149,6 +199,11 @@ function Init() {
 		var last = path.getAt(path.getLength() - 1);
 		path.push(last);
 
+		if (v_data.path) {
+			AnimateAlongShape(vehicle, last, v_data, updates);
+			return;
+		}
+
 		var lat_delta = (v_data.lat - last.lat()) / animation_steps;
 		var lon_delta = (v_data.lon - last.lng()) / animation_steps;
 
@@ -164,8 +219,62 @@ function Init() {
 	
 	var first_update = true;
 	
-	var ProcessVehicleData = function(data) {
-		var vehicles = jQuery.parseJSON(data);
+	/**
+	 * The epoch and version of the last frame we received, which we present
+	 * when reconnecting so the server only sends the frames we missed.
+	 */
+	var last_epoch = null;
+	var last_version = null;
+	
+	/**
+	 * Only the newest frame is animated. Frames that arrive while an animation
+	 * is running, such as the missed frames replayed after a reconnect, wait
+	 * here; when one arrives, the running animation and all but the newest
+	 * waiting frame are applied at once, so the map never falls more than one
+	 * frame behind, even when timers are throttled in a background tab.
+	 */
+	var pending_frames = [];
+	var animating = false;
+
+	var ProcessNextFrame = function() {
+		if (pending_frames.length == 0) {
+			animating = false;
+			return;
+		}
+		animating = true;
+		while (pending_frames.length > 1) {
+			ApplyAll(ProcessVehicleData(pending_frames.shift()));
+		}
+		var updates = ProcessVehicleData(pending_frames.shift());
+		var applyUpdates = function() {
+			if (updates.length == 0 || pending_frames.length > 0) {
+				ApplyAll(updates);
+				ProcessNextFrame();
+				return;
+			}
+			var fs = updates.shift();
+			for ( var i = 0; i < fs.length; i++) {
+				fs[i]();
+			}
+			setTimeout(applyUpdates, 1);
+		};
+		setTimeout(applyUpdates, 1);
+	};
+
+	var ApplyAll = function(updates) {
+		while (updates.length > 0) {
+			var fs = updates.shift();
+			for ( var i = 0; i < fs.length; i++) {
+				fs[i]();
+			}
+		}
+	};
+
+	/**
+	 * @return the animation steps for the frame, each a list of operations
+	 */
+	var ProcessVehicleData = function(frame) {
+		var vehicles = frame.vehicles;
 		var updates = [];
 		var bounds = new google.maps.LatLngBounds();
 		for ( var i = 0; i < animation_steps; ++i) {
@@ -179,35 +288,49 @@ function Init() {
 			map.fitBounds(bounds);
 			first_update = false;
 		}
-		var applyUpdates = function() {
-			if (updates.length == 0) {
-				return;
-			}
-			var fs = updates.shift();
-			for ( var i = 0; i < fs.length; i++) {
-				fs[i]();
-			}
-			setTimeout(applyUpdates, 1);
-		};
-		setTimeout(applyUpdates, 1);	
+		return updates;
 	};
 
 	/**
 	 * We create a WebSocket to listen for vehicle position updates from our
 	 * webserver.
 	 */
-	if ("WebSocket" in window) {
-		var ws = new WebSocket("ws://" + hostandport + "/data.json");
+	var reconnect_delay = 1000;
+
+	var Connect = function() {
+		var url = "ws://" + hostandport + "/data.json";
+		if (last_version != null) {
+			url += "?epoch=" + last_epoch + "&version=" + last_version;
+		}
+		var ws = new WebSocket(url);
 		ws.onopen = function() {
 			console.log("WebSockets connection opened");
+			reconnect_delay = 1000;
 		}
 		ws.onmessage = function(e) {
 			console.log("Got WebSockets message");
-			ProcessVehicleData(e.data);
+			var frame = jQuery.parseJSON(e.data);
+			last_epoch = frame.epoch;
+			last_version = frame.version;
+			pending_frames.push(frame);
+			if (!animating) {
+				ProcessNextFrame();
+			}
 		}
 		ws.onclose = function() {
 			console.log("WebSockets connection closed");
+			/**
+			 * Back off with some randomness so that clients don't all reconnect
+			 * at the same moment after a server restart.
+			 */
+			var delay = reconnect_delay * (0.5 + Math.random());
+			reconnect_delay = Math.min(reconnect_delay * 2, 60000);
+			setTimeout(Connect, delay);
 		}
+	};
+
+	if ("WebSocket" in window) {
+		Connect();
 	} else {
 		alert("No WebSockets support");
 	}
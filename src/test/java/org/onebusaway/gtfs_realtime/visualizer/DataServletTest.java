@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.visualizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataServletTest {
+
+  private List<Vehicle> _vehicles = new ArrayList<Vehicle>();
+
+  private DataServlet _servlet;
+
+  @Before
+  public void setup() {
+    VisualizerService service = new VisualizerService() {
+      @Override
+      public List<Vehicle> getAllVehicles() {
+        return new ArrayList<Vehicle>(_vehicles);
+      }
+    };
+    _servlet = new DataServlet();
+    _servlet.setVisualizerService(service);
+  }
+
+  @Test
+  public void testResumeInsideLog() throws JSONException {
+    List<Vehicle> fleet = getFleet(10);
+    update(fleet);
+    fleet.set(0, vehicle("v0", 2));
+    update(fleet);
+    fleet.set(1, vehicle("v1", 2));
+    update(fleet);
+    assertEquals(3, _servlet.getVersion());
+
+    List<String> frames = _servlet.getCatchUpFrames(1);
+    assertEquals(2, frames.size());
+    assertFrame(frames.get(0), 2, false, 1);
+    assertFrame(frames.get(1), 3, false, 1);
+
+    assertTrue(_servlet.getCatchUpFrames(3).isEmpty());
+  }
+
+  @Test
+  public void testResumeOlderThanLog() throws JSONException {
+    // A large fleet keeps the keyframe larger than the missed frames, so only
+    // the length of the log decides.
+    List<Vehicle> fleet = getFleet(500);
+    update(fleet);
+    for (int t = 2; t <= 100; ++t) {
+      fleet.set(0, vehicle("v0", t));
+      update(fleet);
+    }
+    assertEquals(100, _servlet.getVersion());
+
+    // The log keeps the 64 most recent frames, 37 through 100.
+    List<String> frames = _servlet.getCatchUpFrames(36);
+    assertEquals(64, frames.size());
+    assertFrame(frames.get(0), 37, false, 1);
+
+    frames = _servlet.getCatchUpFrames(35);
+    assertEquals(1, frames.size());
+    assertFrame(frames.get(0), 100, true, 500);
+  }
+
+  @Test
+  public void testMissedFramesLargerThanKeyframe() throws JSONException {
+    update(vehicle("a", 1));
+    update(vehicle("a", 2));
+    update(vehicle("a", 3));
+
+    // Each frame is about as large as the keyframe of the single vehicle.
+    List<String> frames = _servlet.getCatchUpFrames(1);
+    assertEquals(1, frames.size());
+    assertFrame(frames.get(0), 3, true, 1);
+  }
+
+  @Test
+  public void testUnknownEpochOrVersion() throws JSONException {
+    update(vehicle("a", 1));
+    update(vehicle("a", 2));
+
+    String epoch = Long.toString(new JSONObject(
+        _servlet.getCatchUpFrames(-1).get(0)).getLong("epoch"));
+    assertEquals(1, _servlet.getLastVersion(epoch, "1"));
+    assertEquals(-1, _servlet.getLastVersion(epoch, "x"));
+    assertEquals(-1, _servlet.getLastVersion(epoch, null));
+    assertEquals(-1, _servlet.getLastVersion("1", "1"));
+    assertEquals(-1, _servlet.getLastVersion(null, "1"));
+
+    // A version ahead of the server's, e.g. from before a restart that kept
+    // the epoch, gets the keyframe.
+    List<String> frames = _servlet.getCatchUpFrames(5);
+    assertEquals(1, frames.size());
+    assertFrame(frames.get(0), 2, true, 1);
+  }
+
+  @Test
+  public void testRefreshWithoutChanges() throws JSONException {
+    update(vehicle("a", 1), vehicle("b", 1));
+    update(vehicle("a", 1), vehicle("b", 1));
+    assertEquals(1, _servlet.getVersion());
+    assertTrue(_servlet.getCatchUpFrames(1).isEmpty());
+
+    update(vehicle("a", 1), vehicle("b", 2));
+    assertEquals(2, _servlet.getVersion());
+    List<String> frames = _servlet.getCatchUpFrames(1);
+    assertEquals(1, frames.size());
+    assertFrame(frames.get(0), 2, false, 1);
+    JSONObject frame = new JSONObject(frames.get(0));
+    assertEquals("b",
+        frame.getJSONArray("vehicles").getJSONObject(0).getString("id"));
+  }
+
+  private void update(Vehicle... vehicles) {
+    update(Arrays.asList(vehicles));
+  }
+
+  private void update(List<Vehicle> vehicles) {
+    _vehicles = new ArrayList<Vehicle>(vehicles);
+    _servlet.handleVehicles(vehicles);
+  }
+
+  private static List<Vehicle> getFleet(int size) {
+    List<Vehicle> fleet = new ArrayList<Vehicle>();
+    for (int i = 0; i < size; ++i) {
+      fleet.add(vehicle("v" + i, 1));
+    }
+    return fleet;
+  }
+
+  private static Vehicle vehicle(String id, long lastUpdate) {
+    Vehicle vehicle = new Vehicle();
+    vehicle.setId(id);
+    vehicle.setLat(47.0);
+    vehicle.setLon(-122.0 + lastUpdate * 0.001);
+    vehicle.setLastUpdate(lastUpdate);
+    return vehicle;
+  }
+
+  private static void assertFrame(String json, long version, boolean keyframe,
+      int vehicleCount) throws JSONException {
+    JSONObject frame = new JSONObject(json);
+    assertEquals(version, frame.getLong("version"));
+    if (keyframe) {
+      assertTrue(frame.getBoolean("keyframe"));
+    } else {
+      assertFalse(frame.getBoolean("keyframe"));
+    }
+    assertEquals(vehicleCount, frame.getJSONArray("vehicles").length());
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.visualizer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class GtfsCsvReaderTest {
+
+  @Test
+  public void testQuotedFields() throws IOException {
+    GtfsCsvReader reader = reader("a,b,c\n\"x,1\",\"say \"\"hi\"\"\",z\n");
+    assertArrayEquals(new String[] {"x,1", "say \"hi\"", "z"}, reader.next());
+    assertNull(reader.next());
+  }
+
+  @Test
+  public void testQuotedLineBreak() throws IOException {
+    GtfsCsvReader reader = reader("a,b\n\"line 1\nline 2\",z\n");
+    assertArrayEquals(new String[] {"line 1\nline 2", "z"}, reader.next());
+  }
+
+  @Test
+  public void testHeader() throws IOException {
+    GtfsCsvReader reader = reader("\uFEFFshape_id, shape_pt_lat\n\ns1,47\n");
+    assertEquals(0, reader.getColumn("shape_id"));
+    assertEquals(1, reader.getColumn("shape_pt_lat"));
+    assertEquals(-1, reader.getColumn("shape_pt_lon"));
+    assertArrayEquals(new String[] {"s1", "47"}, reader.next());
+  }
+
+  @Test(expected = IOException.class)
+  public void testMissingRequiredColumn() throws IOException {
+    reader("a,b\n").getRequiredColumn("c");
+  }
+
+  private static GtfsCsvReader reader(String content) throws IOException {
+    return new GtfsCsvReader(new ByteArrayInputStream(content.getBytes("UTF-8")));
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.visualizer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.onebusaway.gtfs_realtime.visualizer.GtfsShapeService.ShapeSnap;
+
+public class GtfsShapeServiceTest {
+
+  @Rule
+  public TemporaryFolder _folder = new TemporaryFolder();
+
+  private GtfsShapeService _service;
+
+  @Before
+  public void setup() throws IOException {
+    File gtfs = _folder.newFolder("gtfs");
+    // "straight" is listed out of sequence order. "outAndBack" runs east
+    // along a street and returns west about 11 meters to the north.
+    write(gtfs, "shapes.txt",
+        "shape_id,shape_pt_lat,shape_pt_lon,shape_pt_sequence\n"
+            + "straight,47.0,-122.01,2\n" + "straight,47.0,-122.02,1\n"
+            + "straight,47.0,-122.0,3\n" + "outAndBack,47.0,-122.0,1\n"
+            + "outAndBack,47.0,-121.99,2\n" + "outAndBack,47.0001,-121.99,3\n"
+            + "outAndBack,47.0001,-122.0,4\n");
+    write(gtfs, "trips.txt", "route_id,trip_id,shape_id\n"
+        + "r1,t1,straight\n" + "r2,t2,outAndBack\n");
+    write(gtfs, "routes.txt", "route_id,route_color\n" + "r1,FF0000\n"
+        + "r2,\n");
+    _service = new GtfsShapeService();
+    _service.setGtfsPath(gtfs);
+    _service.start();
+  }
+
+  @Test
+  public void testRouteColor() {
+    assertEquals("#FF0000", _service.getRouteColorForTrip("t1"));
+    assertNull(_service.getRouteColorForTrip("t2"));
+  }
+
+  @Test
+  public void testSnap() {
+    assertNull(_service.snap("unknown", 47.0, -122.01, null));
+    // Too far from the shape.
+    assertNull(_service.snap("t1", 47.01, -122.01, null));
+
+    ShapeSnap snap = _service.snap("t1", 47.0001, -122.01, null);
+    assertNotNull(snap);
+    assertEquals(758, snap.getDistance(), 2);
+  }
+
+  @Test
+  public void testGetPath() {
+    ShapeSnap from = _service.snap("t1", 47.0, -122.015, null);
+    ShapeSnap to = _service.snap("t1", 47.0, -122.005, from);
+    List<ShapePoint> path = _service.getPath(from, to);
+    assertEquals(3, path.size());
+    assertEquals(-122.015, path.get(0).getLon(), 1e-6);
+    assertEquals(-122.01, path.get(1).getLon(), 1e-6);
+    assertEquals(-122.005, path.get(2).getLon(), 1e-6);
+
+    // Moving backwards along the shape has no path.
+    assertNull(_service.getPath(to, from));
+  }
+
+  @Test
+  public void testSnapPrefersForwardLeg() {
+    ShapeSnap previous = _service.snap("t2", 47.0, -121.998, null);
+    assertEquals(152, previous.getDistance(), 2);
+
+    // This position lies on the return leg, but is also within reach of the
+    // outbound leg the vehicle is on.
+    ShapeSnap nearest = _service.snap("t2", 47.0001, -121.996, null);
+    assertEquals(1224, nearest.getDistance(), 2);
+    ShapeSnap forward = _service.snap("t2", 47.0001, -121.996, previous);
+    assertEquals(304, forward.getDistance(), 2);
+
+    assertEquals(2, _service.getPath(previous, forward).size());
+  }
+
+  @Test
+  public void testSnapIgnoresFarLegsAhead() {
+    ShapeSnap previous = _service.snap("t2", 47.0, -121.996, null);
+    assertEquals(304, previous.getDistance(), 2);
+
+    // Jitter slightly more than the allowed backtrack behind the previous
+    // snap, right on the outbound leg, must not jump to the return leg.
+    ShapeSnap snap = _service.snap("t2", 47.00003, -121.9968, previous);
+    assertEquals(243, snap.getDistance(), 2);
+    assertNull(_service.getPath(previous, snap));
+  }
+
+  @Test
+  public void testGetPathRejectsLongDetours() {
+    ShapeSnap from = _service.snap("t2", 47.0, -121.999, null);
+    ShapeSnap to = _service.snap("t2", 47.0001, -121.999, null);
+    assertNull(_service.getPath(from, to));
+  }
+
+  private static void write(File dir, String name, String content)
+      throws IOException {
+    Writer writer = new OutputStreamWriter(new FileOutputStream(new File(dir,
+        name)), "UTF-8");
+    try {
+      writer.write(content);
+    } finally {
+      writer.close();
+    }
+  }
+}
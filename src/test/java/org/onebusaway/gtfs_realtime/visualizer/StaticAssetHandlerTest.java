@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2012 Google, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.onebusaway.gtfs_realtime.visualizer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StaticAssetHandlerTest {
+
+  @Test
+  public void testAcceptsGzip() {
+    assertTrue(StaticAssetHandler.acceptsGzip("gzip, deflate"));
+    assertTrue(StaticAssetHandler.acceptsGzip("br, gzip;q=0.5"));
+    assertTrue(StaticAssetHandler.acceptsGzip("deflate, *"));
+    assertFalse(StaticAssetHandler.acceptsGzip((String) null));
+    assertFalse(StaticAssetHandler.acceptsGzip("identity"));
+    assertFalse(StaticAssetHandler.acceptsGzip("gzip;q=0"));
+    assertFalse(StaticAssetHandler.acceptsGzip("gzip; q=0.0, deflate"));
+    assertFalse(StaticAssetHandler.acceptsGzip("*;q=0"));
+    // An explicit entry for gzip takes precedence over the wildcard.
+    assertFalse(StaticAssetHandler.acceptsGzip("gzip;q=0, *"));
+  }
+}